@@ -0,0 +1,69 @@
+package com.swijaya.samplestepcounter;
+
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures how the per-event cost of {@link StepTriggerEngine} scales with the number of
+ * registered triggers. Suppressed from the regular instrumentation suite, as it registers
+ * hundreds of thousands of triggers; remove the annotation locally to run it.
+ */
+@Suppress
+public class StepTriggerEngineBenchmark extends TestCase {
+
+    private static final String TAG = StepTriggerEngineBenchmark.class.getSimpleName();
+
+    private static final int EVENT_COUNT = 100000;
+
+    private int mFiredCount;
+
+    public void testScalingWithRuleCount() {
+        // warm up, so that the first size measured is not penalized
+        runBenchmark(1000);
+
+        String small = runBenchmark(1000);
+        String large = runBenchmark(100000);
+        Log.i(TAG, "1k rules:   " + small);
+        Log.i(TAG, "100k rules: " + large);
+    }
+
+    private String runBenchmark(int ruleCount) {
+        mFiredCount = 0;
+        StepTriggerEngine engine = new StepTriggerEngine(new StepTriggerEngine.TriggerListener() {
+            @Override
+            public void onTrigger(StepTriggerEngine.Trigger trigger, int steps, long now) {
+                mFiredCount++;
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ruleCount; i++) {
+            engine.addTrigger(new StepTriggerEngine.StepGoal("goal" + i, EVENT_COUNT + 1 + i));
+            engine.addTrigger(new StepTriggerEngine.StepMilestone("milestone" + i, EVENT_COUNT + 1 + i));
+            engine.addTrigger(new StepTriggerEngine.InactivityAlert("alert" + i, 1000 + i));
+        }
+        long addNanos = System.nanoTime() - start;
+
+        // no rule is satisfied by these events, so this measures the cost of the common case
+        start = System.nanoTime();
+        for (int steps = 1; steps <= EVENT_COUNT; steps++) {
+            engine.onStepCount(steps, steps);
+        }
+        long eventNanos = System.nanoTime() - start;
+        assertEquals(0, mFiredCount);
+
+        // now let every rule fire exactly once
+        start = System.nanoTime();
+        engine.onStepCount(EVENT_COUNT + ruleCount, EVENT_COUNT + 1);
+        engine.onTick(EVENT_COUNT + 1 + 1000 + ruleCount);
+        long fireNanos = System.nanoTime() - start;
+        assertEquals(3 * ruleCount, mFiredCount);
+
+        return "add: " + addNanos / (3 * ruleCount) + " ns/rule"
+                + "; events: " + eventNanos / EVENT_COUNT + " ns/event"
+                + "; fire: " + fireNanos / (3 * ruleCount) + " ns/trigger";
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.swijaya.samplestepcounter;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StepTriggerEngineTest extends TestCase {
+
+    private List<StepTriggerEngine.Trigger> mFired;
+    private StepTriggerEngine mEngine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFired = new ArrayList<StepTriggerEngine.Trigger>();
+        mEngine = new StepTriggerEngine(new StepTriggerEngine.TriggerListener() {
+            @Override
+            public void onTrigger(StepTriggerEngine.Trigger trigger, int steps, long now) {
+                mFired.add(trigger);
+            }
+        });
+    }
+
+    public void testStepGoalFiresOnceUntilReset() {
+        StepTriggerEngine.Trigger goal = mEngine.addTrigger(new StepTriggerEngine.StepGoal("goal", 100));
+
+        mEngine.onStepCount(99, 0);
+        assertTrue(mFired.isEmpty());
+        mEngine.onStepCount(150, 1);
+        mEngine.onStepCount(200, 2);
+        assertEquals(1, mFired.size());
+        assertSame(goal, mFired.get(0));
+
+        mEngine.reset();
+        mEngine.onStepCount(100, 3);
+        assertEquals(2, mFired.size());
+    }
+
+    public void testStepMilestoneFiresOnEveryInterval() {
+        mEngine.addTrigger(new StepTriggerEngine.StepMilestone("milestone", 10));
+
+        for (int steps = 1; steps <= 50; steps++) {
+            mEngine.onStepCount(steps, steps);
+        }
+        assertEquals(5, mFired.size());
+
+        // a batched event crossing several milestones fires only once
+        mEngine.onStepCount(85, 100);
+        assertEquals(6, mFired.size());
+        mEngine.onStepCount(89, 101);
+        assertEquals(6, mFired.size());
+        mEngine.onStepCount(90, 102);
+        assertEquals(7, mFired.size());
+    }
+
+    public void testInactivityAlertRearmedByStep() {
+        StepTriggerEngine.Trigger shortAlert = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("short", 1000));
+        StepTriggerEngine.Trigger longAlert = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("long", 5000));
+
+        mEngine.onStepCount(1, 0);
+        mEngine.onTick(999);
+        assertTrue(mFired.isEmpty());
+        mEngine.onTick(1000);
+        mEngine.onTick(2000);
+        assertEquals(1, mFired.size());
+        assertSame(shortAlert, mFired.get(0));
+        mEngine.onTick(6000);
+        assertEquals(2, mFired.size());
+        assertSame(longAlert, mFired.get(1));
+
+        mEngine.onStepCount(2, 7000);
+        mEngine.onTick(8000);
+        assertEquals(3, mFired.size());
+        assertSame(shortAlert, mFired.get(2));
+    }
+
+    public void testRemovedTriggersDoNotFire() {
+        StepTriggerEngine.Trigger goal = mEngine.addTrigger(new StepTriggerEngine.StepGoal("goal", 10));
+        StepTriggerEngine.Trigger alert = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("alert", 10));
+
+        mEngine.onStepCount(1, 0);
+        assertTrue(mEngine.removeTrigger(goal));
+        assertTrue(mEngine.removeTrigger(alert));
+        assertFalse(mEngine.removeTrigger(goal));
+        assertEquals(0, mEngine.getTriggerCount());
+
+        mEngine.onStepCount(10, 1);
+        mEngine.onTick(100);
+        assertTrue(mFired.isEmpty());
+    }
+
+    public void testStepMilestoneRearmedAfterReset() {
+        mEngine.addTrigger(new StepTriggerEngine.StepMilestone("milestone", 10));
+
+        mEngine.onStepCount(25, 0);
+        assertEquals(1, mFired.size());
+
+        mEngine.reset();
+        mEngine.onStepCount(9, 1);
+        assertEquals(1, mFired.size());
+        mEngine.onStepCount(10, 2);
+        assertEquals(2, mFired.size());
+    }
+
+    public void testStepCountGoingDown() {
+        mEngine.addTrigger(new StepTriggerEngine.StepMilestone("milestone", 10));
+        mEngine.addTrigger(new StepTriggerEngine.StepGoal("goal", 20));
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("alert", 1000));
+
+        mEngine.onStepCount(25, 0);
+        assertEquals(2, mFired.size());
+
+        // milestones are re-armed relative to the lower count, but neither that count nor the
+        // spent goal counts as a step
+        mEngine.onStepCount(5, 500);
+        assertEquals(2, mFired.size());
+        assertEquals(1000, mEngine.getNextDeadline());
+        mEngine.onStepCount(10, 600);
+        assertEquals(3, mFired.size());
+        mEngine.onStepCount(20, 700);
+        assertEquals(4, mFired.size());
+        assertTrue(mFired.get(3) instanceof StepTriggerEngine.StepMilestone);
+    }
+
+    public void testInactivityAlertAddedMidIdleStretch() {
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("short", 1000));
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("long", 5000));
+
+        mEngine.onStepCount(1, 0);
+        mEngine.onTick(2000);
+        assertEquals(1, mFired.size());
+        assertEquals(5000, mEngine.getNextDeadline());
+
+        // a window yet to elapse in this idle stretch moves the cursor ahead of the pending one
+        StepTriggerEngine.Trigger middle = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("middle", 3000));
+        assertEquals(3000, mEngine.getNextDeadline());
+        // while one that has already elapsed waits for the next step
+        StepTriggerEngine.Trigger elapsed = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("elapsed", 1500));
+        assertEquals(3000, mEngine.getNextDeadline());
+
+        mEngine.onTick(3000);
+        assertEquals(2, mFired.size());
+        assertSame(middle, mFired.get(1));
+        mEngine.onTick(5000);
+        assertEquals(3, mFired.size());
+        assertEquals(StepTriggerEngine.NEVER, mEngine.getNextDeadline());
+
+        mEngine.onStepCount(2, 6000);
+        mEngine.onTick(7500);
+        assertEquals(5, mFired.size());
+        assertSame(elapsed, mFired.get(4));
+    }
+
+    public void testTriggerOwnership() {
+        StepTriggerEngine other = new StepTriggerEngine(new StepTriggerEngine.TriggerListener() {
+            @Override
+            public void onTrigger(StepTriggerEngine.Trigger trigger, int steps, long now) {
+                mFired.add(trigger);
+            }
+        });
+        // same threshold and (per-engine) id as the one registered with the other engine
+        StepTriggerEngine.Trigger goal = mEngine.addTrigger(new StepTriggerEngine.StepGoal("goal", 10));
+        StepTriggerEngine.Trigger otherGoal = other.addTrigger(new StepTriggerEngine.StepGoal("other", 10));
+
+        assertFalse(other.removeTrigger(goal));
+        assertEquals(1, other.getTriggerCount());
+        other.onStepCount(10, 0);
+        assertEquals(1, mFired.size());
+        assertSame(otherGoal, mFired.get(0));
+
+        try {
+            other.addTrigger(goal);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            mEngine.removeTrigger(null);
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRestore() {
+        StepTriggerEngine.Trigger goal = mEngine.addTrigger(new StepTriggerEngine.StepGoal("goal", 10), true);
+        mEngine.addTrigger(new StepTriggerEngine.StepMilestone("milestone", 10));
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("short", 1000));
+        StepTriggerEngine.Trigger longAlert = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("long", 5000));
+        assertTrue(mEngine.isSpent((StepTriggerEngine.StepGoal) goal));
+
+        // idle since 0, last evaluated at 2000: the short alert has already fired
+        mEngine.restore(25, 0, 2000, 2000);
+        assertEquals(5000, mEngine.getNextDeadline());
+        mEngine.onTick(5000);
+        assertEquals(1, mFired.size());
+        assertSame(longAlert, mFired.get(0));
+
+        mEngine.onStepCount(29, 6000);
+        assertEquals(1, mFired.size());
+        mEngine.onStepCount(30, 7000);
+        assertEquals(2, mFired.size());
+        assertTrue(mFired.get(1) instanceof StepTriggerEngine.StepMilestone);
+    }
+
+    public void testRestoreIdleStretchFromBeforeReboot() {
+        final long minute = 60 * 1000;
+        StepTriggerEngine.Trigger longAlert = mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("long", 240 * minute));
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("short", 30 * minute));
+
+        // active 3h before boot, last evaluated 1h before boot (when the short alert fired)
+        mEngine.restore(0, -180 * minute, -60 * minute, 0);
+        assertEquals(60 * minute, mEngine.getNextDeadline());
+        mEngine.onTick(10 * minute);
+        assertEquals(10 * minute, mEngine.getLastEvaluated());
+
+        // and once more, as after a service restart
+        StepTriggerEngine restarted = new StepTriggerEngine(new StepTriggerEngine.TriggerListener() {
+            @Override
+            public void onTrigger(StepTriggerEngine.Trigger trigger, int steps, long now) {
+                mFired.add(trigger);
+            }
+        });
+        restarted.addTrigger(new StepTriggerEngine.InactivityAlert("short", 30 * minute));
+        longAlert = restarted.addTrigger(new StepTriggerEngine.InactivityAlert("long", 240 * minute));
+        restarted.restore(0, mEngine.getLastActive(), mEngine.getLastEvaluated(), 10 * minute);
+        restarted.onTick(30 * minute);
+        assertTrue(mFired.isEmpty());
+        restarted.onTick(60 * minute);
+        assertEquals(1, mFired.size());
+        assertSame(longAlert, mFired.get(0));
+    }
+
+    public void testRestoreClampsFutureTimes() {
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("alert", 1000));
+
+        // e.g. the wall clock was set back since these were persisted
+        mEngine.restore(0, 5000, 6000, 0);
+        assertEquals(1000, mEngine.getNextDeadline());
+        mEngine.onTick(1000);
+        assertEquals(1, mFired.size());
+    }
+
+    public void testIdleTimeUsesStepTime() {
+        mEngine.addTrigger(new StepTriggerEngine.InactivityAlert("alert", 1000));
+
+        mEngine.onStepCount(1, 0);
+        // a batched step counted at 100 but only delivered (by a flush) at 5000
+        mEngine.onStepCount(2, 100, 5000);
+        assertEquals(1, mFired.size());
+        assertEquals(5000, mEngine.getLastEvaluated());
+
+        // a tick going backwards does not shorten the idle stretch, nor fire the alert again
+        mEngine.onTick(4000);
+        assertEquals(5000, mEngine.getLastEvaluated());
+        mEngine.onTick(6000);
+        assertEquals(1, mFired.size());
+    }
+
+}
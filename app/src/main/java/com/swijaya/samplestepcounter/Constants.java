@@ -8,15 +8,30 @@ public class Constants {
     public static final String ACTION_STEP_EVENT_RECEIVED = "action.step_event_received";
     public static final String ACTION_FLUSH = "action.flush";
     public static final String ACTION_RESET = "action.reset";
+    public static final String ACTION_ADD_TRIGGER = "action.add_trigger";
+    public static final String ACTION_REMOVE_TRIGGER = "action.remove_trigger";
+    public static final String ACTION_TRIGGER_FIRED = "action.trigger_fired";
 
     public static final String EXTRA_STEP_EVENT = "extra.step_event";
+    public static final String EXTRA_TRIGGER_TYPE = "extra.trigger_type";
+    public static final String EXTRA_TRIGGER_NAME = "extra.trigger_name";
+    public static final String EXTRA_TRIGGER_VALUE = "extra.trigger_value";     // steps, or milliseconds for inactivity
+    public static final String EXTRA_TRIGGER_STEPS = "extra.trigger_steps";
 
     // for sampling period
     public static final int SENSOR_DELAY = SensorManager.SENSOR_DELAY_NORMAL;
     public static final int MAX_REPORT_LATENCY = 10 * 1000000;  // 10 seconds
+    public static final long FLUSH_TIMEOUT = 5 * 1000;           // 5 seconds, in milliseconds
 
     public static final String PREF_OFFSET = "pref.offset";
     public static final String PREF_OFFSET_TIMESTAMP = "pref.offset.timestamp";
     public static final String PREF_OFFSET_STEPCOUNT = "pref.offset.stepcount";
+    public static final String PREF_TRIGGERS = "pref.triggers";
+    public static final String PREF_TRIGGERS_LAST_ACTIVE = "pref.triggers.last_active";            // wall clock
+    public static final String PREF_TRIGGERS_LAST_EVALUATED = "pref.triggers.last_evaluated";      // wall clock
+
+    public static final String TRIGGER_TYPE_GOAL = "goal";
+    public static final String TRIGGER_TYPE_MILESTONE = "milestone";
+    public static final String TRIGGER_TYPE_INACTIVITY = "inactivity";
 
 }
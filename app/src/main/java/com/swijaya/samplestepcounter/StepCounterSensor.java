@@ -81,8 +81,18 @@ public class StepCounterSensor {
          *
          * @param stepEvent a sanitized sensor event data representing relative step count since
          *                  the last time the wrapper StepCounterSensor object was reset or initialized
+         * @param eventTimeMillis the absolute time at which the sensor counted the steps, in
+         *                        milliseconds on the {@link android.os.SystemClock#elapsedRealtime()}
+         *                        time base; for batched events this is earlier than their delivery
          */
-        public void onStepCountEvent(StepEvent stepEvent);
+        public void onStepCountEvent(StepEvent stepEvent, long eventTimeMillis);
+
+        /**
+         * The callback through which owner of this sensor wrapper is notified that a flush
+         * requested via {@link StepCounterSensor#flush()} has completed, i.e. that all batched
+         * step count events have already been delivered to {@link #onStepCountEvent(StepEvent, long)}.
+         */
+        public void onFlushCompleted();
     }
 
     private static final String TAG = StepCounterSensor.class.getSimpleName();
@@ -195,10 +205,13 @@ public class StepCounterSensor {
     }
 
     /**
-     * Flush the internal step count sensor's FIFO queue
+     * Flush the internal step count sensor's FIFO queue. This is asynchronous: the batched events
+     * are delivered afterwards, followed by {@link StepCountListener#onFlushCompleted()}.
+     *
+     * @return true if the flush was requested (and a completion callback is thus to follow)
      */
-    public void flush() {
-        mSensorManager.flush(mStepCounterListener);
+    public boolean flush() {
+        return mSensorManager.flush(mStepCounterListener);
     }
 
     public int getFifoMaxEventCount() {
@@ -208,15 +221,18 @@ public class StepCounterSensor {
     /**
      * Reset the "anchor" step count to the one last seen. Future step events will be relative
      * to the latter.
+     *
+     * @return true if reset; false if no sensor event has been seen yet to reset to
      */
-    public void reset() {
+    public boolean reset() {
         if (mLastSeenStepEvent == null) {
             Log.w(TAG, "We have not seen any sensor event!");
-            return;
+            return false;
         }
         mAnchorStepEvent = mLastSeenStepEvent;
         mLastSeenRelativeStepEvent = new StepEvent(0, 0);
         mOffset = new StepEvent(0, 0);
+        return true;
     }
 
     public void deinitialize() {
@@ -261,10 +277,11 @@ public class StepCounterSensor {
 
             // fire a step count event with this event data relative to the first time we "anchored"
             if (mUiListener != null) {
+                // sensor event timestamps are in nanoseconds, on the elapsed realtime base
                 mUiListener.onStepCountEvent(new StepEvent(
                         mLastSeenRelativeStepEvent.timestamp + mOffset.timestamp,
                         mLastSeenRelativeStepEvent.steps + mOffset.steps
-                ));
+                ), timestamp / 1000000);
             }
         }
 
@@ -276,6 +293,9 @@ public class StepCounterSensor {
         @Override
         public void onFlushCompleted(Sensor sensor) {
             Log.d(TAG, "Explicit flush request completed.");
+            if (mUiListener != null) {
+                mUiListener.onFlushCompleted();
+            }
         }
 
     }
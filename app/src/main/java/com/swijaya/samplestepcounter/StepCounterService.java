@@ -6,10 +6,19 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 public class StepCounterService extends Service {
 
     private static final String TAG = StepCounterService.class.getSimpleName();
@@ -19,6 +28,13 @@ public class StepCounterService extends Service {
     private StepCounterSensor mStepCounter;
     private StepCounterSensor.StepCountListener mStepCounterListener;
     private PendingIntent mWakeupIntent;
+    private StepTriggerEngine mTriggerEngine;
+    private Map<String, StepTriggerEngine.Trigger> mTriggers;   // by name
+    private PendingIntent mInactivityIntent;
+    private long mScheduledDeadline = StepTriggerEngine.NEVER;  // of the pending inactivity alarm
+    private PowerManager.WakeLock mFlushWakeLock;
+    private Handler mHandler;
+    private Runnable mFlushTimeout;
 
     public StepCounterService() {
     }
@@ -32,6 +48,22 @@ public class StepCounterService extends Service {
     public void onCreate() {
         StepCounterSensor.StepEvent offset = loadPrefOffset();
 
+        mTriggerEngine = new StepTriggerEngine(this.new TriggerListener());
+        mTriggers = new HashMap<String, StepTriggerEngine.Trigger>();
+        loadPrefTriggers(offset.steps);
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mFlushWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mFlushWakeLock.setReferenceCounted(false);
+        mHandler = new Handler();
+        mFlushTimeout = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Timed out waiting for the sensor flush to complete.");
+                checkInactivity();
+            }
+        };
+
         mStepCounterListener = this.new StepEventListener();
         mStepCounter = new StepCounterSensor(this,
                 Constants.SENSOR_DELAY, Constants.MAX_REPORT_LATENCY,
@@ -70,39 +102,56 @@ public class StepCounterService extends Service {
             long wakeupDelay = (maxEvents / 10) * 1000;   // in milliseconds
             Intent flushIntent = new Intent(this, WakeStepCounterReceiver.class);
             flushIntent.setAction(Constants.ACTION_FLUSH);
-            mWakeupIntent = PendingIntent.getBroadcast(this, 0, intent, 0);
+            mWakeupIntent = PendingIntent.getBroadcast(this, 0, flushIntent, 0);
             Log.d(TAG, "Setting a repeating alarm with delay hint of " + wakeupDelay + " milliseconds.");
             alarmManager.setInexactRepeating(AlarmManager.RTC_WAKEUP,
                     System.currentTimeMillis() + wakeupDelay,
                     wakeupDelay,
                     mWakeupIntent);
+
+            // start (or resume) the inactivity clock once the freshly registered sensor caught up
+            flushAndCheckInactivity();
         }
 
         assert (mStepCounter.isInitialized());
 
         if (intent != null) {
-            // we might have been started by a wakeful receiver; if so, release its wake lock
-            if (WakeStepCounterReceiver.completeWakefulIntent(intent)) {
-                Log.d(TAG, "Started by a wakeful receiver. Released wake lock.");
-            }
-            else {
-                Log.d(TAG, "Was not started by a wakeful receiver.");
-            }
-
             String action = intent.getAction();
             if (action != null) {
                 if (action.equals(Constants.ACTION_FLUSH)) {
                     Log.i(TAG, "Flushing step counter sensor data.");
-                    mStepCounter.flush();
+                    flushAndCheckInactivity();
                     // take this opportunity to persist the last seen (relative) step count data as offset
                     savePrefOffset();
                 }
                 else if (action.equals(Constants.ACTION_RESET)) {
                     Log.i(TAG, "Resetting step counter relative anchor.");
-                    mStepCounter.reset();
+                    // the sensor does not reset before it has seen an event, in which case its
+                    // step counts still include the offset and triggers must stay armed against them
+                    if (mStepCounter.reset()) {
+                        mTriggerEngine.reset();
+                        savePrefTriggers();
+                    }
                     // we need to persist the now (0, 0) step count data as offset
                     savePrefOffset();
                 }
+                else if (action.equals(Constants.ACTION_ADD_TRIGGER)) {
+                    addTrigger(intent.getStringExtra(Constants.EXTRA_TRIGGER_TYPE),
+                            intent.getStringExtra(Constants.EXTRA_TRIGGER_NAME),
+                            intent.getLongExtra(Constants.EXTRA_TRIGGER_VALUE, 0));
+                }
+                else if (action.equals(Constants.ACTION_REMOVE_TRIGGER)) {
+                    removeTrigger(intent.getStringExtra(Constants.EXTRA_TRIGGER_NAME));
+                }
+            }
+
+            // we might have been started by a wakeful receiver; if so, release its wake lock,
+            // which only now that any flush above holds its own wake lock is safe to do
+            if (WakeStepCounterReceiver.completeWakefulIntent(intent)) {
+                Log.d(TAG, "Started by a wakeful receiver. Released wake lock.");
+            }
+            else {
+                Log.d(TAG, "Was not started by a wakeful receiver.");
             }
         }
 
@@ -122,6 +171,110 @@ public class StepCounterService extends Service {
         }
     }
 
+    private void flushAndCheckInactivity() {
+        // inactivity alerts must only be evaluated once the flush has completed (see
+        // StepEventListener#onFlushCompleted()): flush() is asynchronous, and steps still batched
+        // in the hardware FIFO (e.g. while the screen was off) would otherwise not have reached
+        // the trigger engine yet, making a user who has been walking all along look idle;
+        // keep the device awake until then (or until we give up on the callback)
+        mFlushWakeLock.acquire(2 * Constants.FLUSH_TIMEOUT);
+        mHandler.removeCallbacks(mFlushTimeout);
+        mHandler.postDelayed(mFlushTimeout, Constants.FLUSH_TIMEOUT);
+        if (!mStepCounter.flush()) {
+            // no completion callback will follow, so evaluate against what we have seen so far
+            checkInactivity();
+        }
+    }
+
+    private void checkInactivity() {
+        mHandler.removeCallbacks(mFlushTimeout);
+
+        long now = SystemClock.elapsedRealtime();
+        mTriggerEngine.onTick(now);
+        scheduleInactivityCheck(now);
+        // take this opportunity to persist the trigger engine's idle clock
+        savePrefTriggers();
+
+        // the next inactivity alarm is set, so the device may go back to sleep
+        if (mFlushWakeLock.isHeld()) {
+            mFlushWakeLock.release();
+        }
+    }
+
+    private void scheduleInactivityCheck(long now) {
+        long deadline = mTriggerEngine.getNextDeadline();
+        if (deadline == StepTriggerEngine.NEVER || (mScheduledDeadline > now && mScheduledDeadline <= deadline)) {
+            // nothing is armed, or an alarm at or before the deadline is already pending;
+            // steps only push the deadline later, and the pending alarm will reschedule
+            return;
+        }
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+
+        if (mInactivityIntent == null) {
+            // the alarm goes through a flush as well, for the same reason as the repeating one
+            Intent flushIntent = new Intent(this, WakeStepCounterReceiver.class);
+            flushIntent.setAction(Constants.ACTION_FLUSH);
+            mInactivityIntent = PendingIntent.getBroadcast(this, 1, flushIntent, 0);
+        }
+
+        Log.d(TAG, "Setting an inactivity alarm in " + (deadline - now) + " milliseconds.");
+        alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, mInactivityIntent);
+        mScheduledDeadline = deadline;
+    }
+
+    private StepTriggerEngine.Trigger createTrigger(String type, String name, long value) {
+        if (name == null) {
+            throw new IllegalArgumentException("Trigger name must not be null");
+        }
+        if (Constants.TRIGGER_TYPE_INACTIVITY.equals(type)) {
+            return new StepTriggerEngine.InactivityAlert(name, value);
+        }
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Trigger steps out of range: " + value);
+        }
+        if (Constants.TRIGGER_TYPE_GOAL.equals(type)) {
+            return new StepTriggerEngine.StepGoal(name, (int) value);
+        }
+        if (Constants.TRIGGER_TYPE_MILESTONE.equals(type)) {
+            return new StepTriggerEngine.StepMilestone(name, (int) value);
+        }
+        throw new IllegalArgumentException("Unknown trigger type: " + type);
+    }
+
+    private void addTrigger(String type, String name, long value) {
+        StepTriggerEngine.Trigger trigger;
+        try {
+            trigger = createTrigger(type, name, value);
+        }
+        catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring invalid trigger: " + e.getMessage());
+            return;
+        }
+
+        // a trigger with the same name is replaced
+        StepTriggerEngine.Trigger oldTrigger = mTriggers.put(name, trigger);
+        if (oldTrigger != null) {
+            mTriggerEngine.removeTrigger(oldTrigger);
+        }
+        mTriggerEngine.addTrigger(trigger);
+        Log.i(TAG, "Added trigger: " + trigger);
+
+        scheduleInactivityCheck(SystemClock.elapsedRealtime());
+        savePrefTriggers();
+    }
+
+    private void removeTrigger(String name) {
+        StepTriggerEngine.Trigger trigger = name != null ? mTriggers.remove(name) : null;
+        if (trigger == null) {
+            Log.w(TAG, "No trigger to remove with name: " + name);
+            return;
+        }
+        mTriggerEngine.removeTrigger(trigger);
+        Log.i(TAG, "Removed trigger: " + trigger);
+        savePrefTriggers();
+    }
+
     @Override
     public void onDestroy() {
         // this is not guaranteed to be called!
@@ -139,8 +292,21 @@ public class StepCounterService extends Service {
             mWakeupIntent = null;
         }
 
+        if (mInactivityIntent != null) {
+            AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(mInactivityIntent);
+            mInactivityIntent = null;
+            mScheduledDeadline = StepTriggerEngine.NEVER;
+        }
+
+        mHandler.removeCallbacks(mFlushTimeout);
+        if (mFlushWakeLock.isHeld()) {
+            mFlushWakeLock.release();
+        }
+
         // persist the current relative step count data for future offset calculation
         savePrefOffset();
+        savePrefTriggers();
     }
 
     private StepCounterSensor.StepEvent loadPrefOffset() {
@@ -168,12 +334,116 @@ public class StepCounterService extends Service {
         editor.commit();
     }
 
+    private void loadPrefTriggers(int steps) {
+        if (mPrefs == null) {
+            mPrefs = getSharedPreferences(Constants.PREF_OFFSET, 0);
+        }
+
+        // each record is "type:value:spent:name"; the name goes last as it may contain colons
+        Set<String> records = mPrefs.getStringSet(Constants.PREF_TRIGGERS, Collections.<String>emptySet());
+        for (String record : records) {
+            String[] fields = record.split(":", 4);
+            try {
+                if (fields.length != 4) {
+                    throw new IllegalArgumentException("Malformed trigger record: " + record);
+                }
+                StepTriggerEngine.Trigger trigger = createTrigger(fields[0], fields[3], Long.parseLong(fields[1]));
+                mTriggerEngine.addTrigger(trigger, fields[2].equals("1"));
+                mTriggers.put(trigger.name, trigger);
+            }
+            catch (IllegalArgumentException e) {
+                Log.w(TAG, "Dropping persisted trigger: " + e.getMessage());
+            }
+        }
+
+        // the engine runs on elapsed realtime, which restarts on reboot, so persist wall clock time;
+        // an idle stretch that started before the last reboot simply translates to negative times
+        long lastActive = fromWallClock(mPrefs.getLong(Constants.PREF_TRIGGERS_LAST_ACTIVE, StepTriggerEngine.NEVER));
+        long lastEvaluated = fromWallClock(mPrefs.getLong(Constants.PREF_TRIGGERS_LAST_EVALUATED, StepTriggerEngine.NEVER));
+        mTriggerEngine.restore(steps, lastActive, lastEvaluated, SystemClock.elapsedRealtime());
+        Log.i(TAG, "Loaded " + mTriggers.size() + " triggers.");
+    }
+
+    private void savePrefTriggers() {
+        if (mPrefs == null) {
+            mPrefs = getSharedPreferences(Constants.PREF_OFFSET, 0);
+        }
+
+        Set<String> records = new HashSet<String>();
+        for (StepTriggerEngine.Trigger trigger : mTriggers.values()) {
+            String type;
+            long value;
+            boolean spent = false;
+            if (trigger instanceof StepTriggerEngine.StepGoal) {
+                type = Constants.TRIGGER_TYPE_GOAL;
+                value = ((StepTriggerEngine.StepGoal) trigger).targetSteps;
+                spent = mTriggerEngine.isSpent((StepTriggerEngine.StepGoal) trigger);
+            }
+            else if (trigger instanceof StepTriggerEngine.StepMilestone) {
+                type = Constants.TRIGGER_TYPE_MILESTONE;
+                value = ((StepTriggerEngine.StepMilestone) trigger).intervalSteps;
+            }
+            else {
+                type = Constants.TRIGGER_TYPE_INACTIVITY;
+                value = ((StepTriggerEngine.InactivityAlert) trigger).windowMillis;
+            }
+            records.add(type + ":" + value + ":" + (spent ? "1" : "0") + ":" + trigger.name);
+        }
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putStringSet(Constants.PREF_TRIGGERS, records);
+        editor.putLong(Constants.PREF_TRIGGERS_LAST_ACTIVE, toWallClock(mTriggerEngine.getLastActive()));
+        editor.putLong(Constants.PREF_TRIGGERS_LAST_EVALUATED, toWallClock(mTriggerEngine.getLastEvaluated()));
+        editor.commit();
+    }
+
+    private static long toWallClock(long elapsedRealtime) {
+        if (elapsedRealtime == StepTriggerEngine.NEVER) {
+            return StepTriggerEngine.NEVER;
+        }
+        return System.currentTimeMillis() - (SystemClock.elapsedRealtime() - elapsedRealtime);
+    }
+
+    private static long fromWallClock(long wallClock) {
+        if (wallClock == StepTriggerEngine.NEVER) {
+            return StepTriggerEngine.NEVER;
+        }
+        return SystemClock.elapsedRealtime() - (System.currentTimeMillis() - wallClock);
+    }
+
 
     private class StepEventListener implements StepCounterSensor.StepCountListener {
         @Override
-        public void onStepCountEvent(StepCounterSensor.StepEvent stepEvent) {
+        public void onStepCountEvent(StepCounterSensor.StepEvent stepEvent, long eventTimeMillis) {
             Log.d(TAG, "Got a relative step event with timestamp: " + stepEvent.timestamp + " steps: " + stepEvent.steps);
             broadcastStepEvent(stepEvent);
+            long now = SystemClock.elapsedRealtime();
+            // the step happened when the sensor counted it, not when a flush delivered it
+            mTriggerEngine.onStepCountEvent(stepEvent, eventTimeMillis, now);
+            scheduleInactivityCheck(now);
+        }
+
+        @Override
+        public void onFlushCompleted() {
+            // all batched steps have reached the trigger engine by now
+            checkInactivity();
+        }
+    }
+
+    private class TriggerListener implements StepTriggerEngine.TriggerListener {
+        @Override
+        public void onTrigger(StepTriggerEngine.Trigger trigger, int steps, long now) {
+            Log.i(TAG, "Trigger fired: " + trigger + " at steps: " + steps);
+            Intent broadcastIntent = new Intent();
+            broadcastIntent.setAction(Constants.ACTION_TRIGGER_FIRED);
+            broadcastIntent.putExtra(Constants.EXTRA_TRIGGER_NAME, trigger.name);
+            broadcastIntent.putExtra(Constants.EXTRA_TRIGGER_STEPS, steps);
+            sendBroadcast(broadcastIntent);
+
+            if (trigger instanceof StepTriggerEngine.StepGoal) {
+                // a fired goal stays spent until reset, even across service restarts
+                savePrefTriggers();
+            }
         }
     }
 
@@ -0,0 +1,466 @@
+package com.swijaya.samplestepcounter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Evaluates user-defined triggers (step goals, step milestones and inactivity alerts) against
+ * the stream of relative step counts coming out of a {@link StepCounterSensor.StepCountListener}.
+ *
+ * Step-based triggers are kept ordered by the step count at which they next fire, and the
+ * smallest such threshold is cached, so that an incoming step event which does not cross it
+ * costs a single comparison regardless of how many triggers are registered. Inactivity alerts
+ * are kept ordered by their window, together with a cursor pointing at the next alert that has
+ * not yet fired during the current idle stretch; a step simply rewinds the cursor to the front.
+ * Adding or removing a trigger costs O(log n).
+ *
+ * Time is always supplied by the caller (e.g. {@link android.os.SystemClock#elapsedRealtime()}),
+ * in milliseconds, and must be monotonic. It may be negative (e.g. a step from before a reboot).
+ * This class is not thread-safe.
+ */
+public class StepTriggerEngine {
+
+    /**
+     * Returned in place of a time that does not exist (yet), e.g. before this engine has started.
+     */
+    public static final long NEVER = Long.MIN_VALUE;
+
+    /**
+     * Owner of this engine is notified of fired triggers via this callback interface.
+     */
+    public interface TriggerListener {
+        /**
+         * @param trigger the trigger that just fired
+         * @param steps the relative step count at the time the trigger fired
+         * @param now the (caller-supplied) time in milliseconds at which the trigger fired
+         */
+        public void onTrigger(Trigger trigger, int steps, long now);
+    }
+
+    /**
+     * Base class of all triggers. A trigger instance can only be registered with one engine.
+     * Only the trigger types defined here are supported by the engine, hence the package-private
+     * constructors.
+     */
+    public static abstract class Trigger {
+        public final String name;
+        StepTriggerEngine mOwner;   // the engine this trigger is registered with, if any
+        long mId = -1;              // assigned by the engine upon registration
+
+        Trigger(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + name + ")";
+        }
+    }
+
+    /**
+     * A trigger that fires based on the relative step count.
+     */
+    public static abstract class StepTrigger extends Trigger {
+        int mNextThreshold;
+
+        StepTrigger(String name) {
+            super(name);
+        }
+
+        /**
+         * @param steps the current relative step count
+         * @return the step count at which this trigger should fire next
+         */
+        abstract int firstThreshold(int steps);
+
+        /**
+         * @param steps the relative step count at which this trigger just fired
+         * @return the step count at which this trigger should fire next, or -1 if it is spent
+         */
+        abstract int nextThreshold(int steps);
+    }
+
+    /**
+     * Fires once when the relative step count reaches the given target (e.g. a daily goal).
+     * It is re-armed when the engine is {@link #reset()}.
+     */
+    public static class StepGoal extends StepTrigger {
+        public final int targetSteps;
+
+        public StepGoal(String name, int targetSteps) {
+            super(name);
+            if (targetSteps <= 0) {
+                throw new IllegalArgumentException("Target steps must be positive: " + targetSteps);
+            }
+            this.targetSteps = targetSteps;
+        }
+
+        @Override
+        int firstThreshold(int steps) {
+            return targetSteps;
+        }
+
+        @Override
+        int nextThreshold(int steps) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fires every time the relative step count crosses a multiple of the given interval.
+     * If a single (batched) step event crosses several multiples, it fires only once.
+     */
+    public static class StepMilestone extends StepTrigger {
+        public final int intervalSteps;
+
+        public StepMilestone(String name, int intervalSteps) {
+            super(name);
+            if (intervalSteps <= 0) {
+                throw new IllegalArgumentException("Interval steps must be positive: " + intervalSteps);
+            }
+            this.intervalSteps = intervalSteps;
+        }
+
+        @Override
+        int firstThreshold(int steps) {
+            return nextThreshold(steps);
+        }
+
+        @Override
+        int nextThreshold(int steps) {
+            return (steps / intervalSteps + 1) * intervalSteps;
+        }
+    }
+
+    /**
+     * Fires once when no step has been seen for the given window. It is re-armed by the next step.
+     */
+    public static class InactivityAlert extends Trigger {
+        public final long windowMillis;
+
+        public InactivityAlert(String name, long windowMillis) {
+            super(name);
+            if (windowMillis <= 0) {
+                throw new IllegalArgumentException("Window must be positive: " + windowMillis);
+            }
+            this.windowMillis = windowMillis;
+        }
+    }
+
+    private static final Comparator<StepTrigger> THRESHOLD_ORDER = new Comparator<StepTrigger>() {
+        @Override
+        public int compare(StepTrigger lhs, StepTrigger rhs) {
+            if (lhs.mNextThreshold != rhs.mNextThreshold) {
+                return lhs.mNextThreshold < rhs.mNextThreshold ? -1 : 1;
+            }
+            return lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<InactivityAlert> WINDOW_ORDER = new Comparator<InactivityAlert>() {
+        @Override
+        public int compare(InactivityAlert lhs, InactivityAlert rhs) {
+            if (lhs.windowMillis != rhs.windowMillis) {
+                return lhs.windowMillis < rhs.windowMillis ? -1 : 1;
+            }
+            return lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+        }
+    };
+
+    private TriggerListener mListener;
+    private long mNextId;
+
+    private Set<StepTrigger> mSpentStepTriggers;        // fired goals, waiting for a reset
+    private TreeSet<StepTrigger> mStepTriggers;         // armed, ordered by next threshold
+    private int mNextThreshold;                         // cached threshold of the first of the above
+
+    private TreeSet<InactivityAlert> mInactivityAlerts; // ordered by window
+    private InactivityAlert mFirstInactivityAlert;      // cached first of the above
+    private InactivityAlert mNextInactivityAlert;       // next one yet to fire in the current idle stretch
+    private long mLastIdleMillis;                       // idle time as of the last evaluation
+
+    private int mLastSteps;
+    private long mLastActive = NEVER;                   // time of the last step; NEVER if not started
+
+    public StepTriggerEngine(TriggerListener listener) {
+        assert (listener != null);
+
+        mListener = listener;
+        mSpentStepTriggers = new HashSet<StepTrigger>();
+        mStepTriggers = new TreeSet<StepTrigger>(THRESHOLD_ORDER);
+        mNextThreshold = Integer.MAX_VALUE;
+        mInactivityAlerts = new TreeSet<InactivityAlert>(WINDOW_ORDER);
+    }
+
+    /**
+     * Register a trigger with this engine. A step trigger is armed relative to the step count
+     * last seen; an inactivity alert is armed by the next step (or immediately if the window
+     * has not yet elapsed in the current idle stretch).
+     *
+     * @param trigger the trigger to register
+     * @return the same trigger, for convenience
+     */
+    public <T extends Trigger> T addTrigger(T trigger) {
+        return addTrigger(trigger, false);
+    }
+
+    /**
+     * @param trigger the trigger to register
+     * @param spent whether the trigger, if a StepGoal, has already fired (e.g. when restoring
+     *              persisted state); it is then only re-armed by {@link #reset()}
+     * @return the same trigger, for convenience
+     * @see #addTrigger(Trigger)
+     */
+    public <T extends Trigger> T addTrigger(T trigger, boolean spent) {
+        if (trigger == null) {
+            throw new IllegalArgumentException("Trigger must not be null");
+        }
+        if (trigger.mOwner != null) {
+            throw new IllegalStateException("Trigger is already registered: " + trigger);
+        }
+        trigger.mOwner = this;
+        trigger.mId = mNextId++;
+
+        if (trigger instanceof StepGoal && spent) {
+            mSpentStepTriggers.add((StepGoal) trigger);
+        }
+        else if (trigger instanceof StepTrigger) {
+            StepTrigger stepTrigger = (StepTrigger) trigger;
+            stepTrigger.mNextThreshold = stepTrigger.firstThreshold(mLastSteps);
+            mStepTriggers.add(stepTrigger);
+            updateNextThreshold();
+        }
+        else {
+            InactivityAlert alert = (InactivityAlert) trigger;
+            mInactivityAlerts.add(alert);
+            mFirstInactivityAlert = mInactivityAlerts.first();
+            if (mLastActive != NEVER && alert.windowMillis > mLastIdleMillis
+                    && (mNextInactivityAlert == null || WINDOW_ORDER.compare(alert, mNextInactivityAlert) < 0)) {
+                mNextInactivityAlert = alert;
+            }
+        }
+        return trigger;
+    }
+
+    /**
+     * Unregister a trigger from this engine.
+     *
+     * @param trigger the trigger to unregister
+     * @return true if the trigger was registered with this engine
+     */
+    public boolean removeTrigger(Trigger trigger) {
+        if (trigger == null) {
+            throw new IllegalArgumentException("Trigger must not be null");
+        }
+        if (trigger.mOwner != this) {
+            return false;
+        }
+
+        boolean removed;
+        if (trigger instanceof StepTrigger) {
+            StepTrigger stepTrigger = (StepTrigger) trigger;
+            removed = mSpentStepTriggers.remove(stepTrigger) || mStepTriggers.remove(stepTrigger);
+            updateNextThreshold();
+        }
+        else {
+            InactivityAlert alert = (InactivityAlert) trigger;
+            if (alert == mNextInactivityAlert) {
+                mNextInactivityAlert = mInactivityAlerts.higher(alert);
+            }
+            removed = mInactivityAlerts.remove(alert);
+            mFirstInactivityAlert = mInactivityAlerts.isEmpty() ? null : mInactivityAlerts.first();
+        }
+        assert (removed);
+        trigger.mOwner = null;
+        trigger.mId = -1;
+        return true;
+    }
+
+    public int getTriggerCount() {
+        return mSpentStepTriggers.size() + mStepTriggers.size() + mInactivityAlerts.size();
+    }
+
+    /**
+     * @param trigger a step trigger
+     * @return true if the trigger is a goal registered with this engine that has already fired
+     */
+    public boolean isSpent(StepTrigger trigger) {
+        return trigger.mOwner == this && mSpentStepTriggers.contains(trigger);
+    }
+
+    /**
+     * @return the time of the last step seen, or {@link #NEVER} if this engine has not been started
+     */
+    public long getLastActive() {
+        return mLastActive;
+    }
+
+    /**
+     * @return the time inactivity alerts were last evaluated at, or {@link #NEVER} if this engine
+     *      has not been started
+     */
+    public long getLastEvaluated() {
+        return mLastActive == NEVER ? NEVER : mLastActive + mLastIdleMillis;
+    }
+
+    /**
+     * The caller is responsible for calling {@link #onTick(long)} at (or after) this time, e.g.
+     * by setting an alarm. Note that steps seen in the meantime only push the deadline later,
+     * so an earlier alarm is never missed; it may just find nothing to fire.
+     *
+     * @return the time at which the next inactivity alert is due, or {@link #NEVER} if none is armed
+     */
+    public long getNextDeadline() {
+        if (mLastActive == NEVER || mNextInactivityAlert == null) {
+            return NEVER;
+        }
+        return mLastActive + mNextInactivityAlert.windowMillis;
+    }
+
+    /**
+     * Restore previously persisted state, after the triggers themselves have been re-registered.
+     * Step triggers are re-armed relative to the given step count, and inactivity alerts whose
+     * window had already elapsed as of the last evaluation are considered fired. Restored times
+     * are clamped to the current time, so that a clock set back cannot hold alerts back.
+     *
+     * @param steps the relative step count last seen
+     * @param lastActive as returned by {@link #getLastActive()}, translated to the current time base
+     * @param lastEvaluated as returned by {@link #getLastEvaluated()}, translated likewise
+     * @param now the current time in milliseconds
+     */
+    public void restore(int steps, long lastActive, long lastEvaluated, long now) {
+        mLastSteps = steps;
+        rearm(false);
+
+        if (lastActive == NEVER) {
+            return;
+        }
+        mLastActive = Math.min(lastActive, now);
+        mLastIdleMillis = Math.min(lastEvaluated, now) - mLastActive;
+        if (mLastIdleMillis < 0) {
+            mLastIdleMillis = 0;
+        }
+        mNextInactivityAlert = null;
+        for (InactivityAlert alert : mInactivityAlerts) {
+            if (alert.windowMillis > mLastIdleMillis) {
+                mNextInactivityAlert = alert;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Feed a (relative) step count event into this engine, firing any trigger it satisfies.
+     *
+     * @param stepEvent the relative step event, as passed to a StepCountListener
+     * @param stepTime the time in milliseconds at which the sensor counted the steps; this can
+     *                 be well before now for events batched in the sensor's FIFO queue
+     * @param now the current time in milliseconds
+     */
+    public void onStepCountEvent(StepCounterSensor.StepEvent stepEvent, long stepTime, long now) {
+        onStepCount(stepEvent.steps, stepTime, now);
+    }
+
+    /**
+     * Same as {@link #onStepCount(int, long, long)}, for steps counted just now.
+     */
+    public void onStepCount(int steps, long now) {
+        onStepCount(steps, now, now);
+    }
+
+    /**
+     * A step count that goes down without a {@link #reset()} (e.g. the sensor re-anchored) is not
+     * considered activity; milestones are re-armed relative to it, but spent goals stay spent.
+     *
+     * @see #onStepCountEvent(StepCounterSensor.StepEvent, long, long)
+     */
+    public void onStepCount(int steps, long stepTime, long now) {
+        if (mLastActive == NEVER) {
+            markActive(Math.min(stepTime, now));
+        }
+        else if (steps > mLastSteps && Math.min(stepTime, now) > mLastActive) {
+            // a step no later than the last one seen (e.g. a restored one) is already accounted for
+            markActive(Math.min(stepTime, now));
+        }
+        if (steps < mLastSteps) {
+            mLastSteps = steps;
+            rearm(false);
+        }
+        mLastSteps = steps;
+
+        while (steps >= mNextThreshold) {
+            StepTrigger trigger = mStepTriggers.pollFirst();
+            int nextThreshold = trigger.nextThreshold(steps);
+            if (nextThreshold < 0) {
+                mSpentStepTriggers.add(trigger);
+            }
+            else {
+                trigger.mNextThreshold = nextThreshold;
+                mStepTriggers.add(trigger);
+            }
+            updateNextThreshold();
+            mListener.onTrigger(trigger, steps, now);
+        }
+
+        onTick(now);
+    }
+
+    /**
+     * Let this engine know that time has passed without any step event, firing any inactivity
+     * alert whose window has elapsed. This should be called no later than {@link #getNextDeadline()}.
+     *
+     * @param now the current time in milliseconds
+     */
+    public void onTick(long now) {
+        if (mLastActive == NEVER) {
+            markActive(now);
+        }
+
+        // the idle time only grows within an idle stretch, so alerts cannot fire twice in it
+        mLastIdleMillis = Math.max(mLastIdleMillis, now - mLastActive);
+        while (mNextInactivityAlert != null && mNextInactivityAlert.windowMillis <= mLastIdleMillis) {
+            InactivityAlert alert = mNextInactivityAlert;
+            mNextInactivityAlert = mInactivityAlerts.higher(alert);
+            mListener.onTrigger(alert, mLastSteps, now);
+        }
+    }
+
+    /**
+     * Reset the relative step count back to zero, re-arming all step triggers (including spent
+     * goals) relative to it. This should go hand in hand with {@link StepCounterSensor#reset()}.
+     */
+    public void reset() {
+        mLastSteps = 0;
+        rearm(true);
+    }
+
+    private void rearm(boolean includeSpent) {
+        List<StepTrigger> stepTriggers = new ArrayList<StepTrigger>(mStepTriggers);
+        if (includeSpent) {
+            stepTriggers.addAll(mSpentStepTriggers);
+            mSpentStepTriggers.clear();
+        }
+        mStepTriggers.clear();
+
+        for (StepTrigger trigger : stepTriggers) {
+            trigger.mNextThreshold = trigger.firstThreshold(mLastSteps);
+            mStepTriggers.add(trigger);
+        }
+        updateNextThreshold();
+    }
+
+    private void markActive(long time) {
+        mLastActive = time;
+        mLastIdleMillis = 0;
+        mNextInactivityAlert = mFirstInactivityAlert;
+    }
+
+    private void updateNextThreshold() {
+        mNextThreshold = mStepTriggers.isEmpty() ? Integer.MAX_VALUE : mStepTriggers.first().mNextThreshold;
+    }
+
+}